@@ -0,0 +1,370 @@
+package nhs.genetics.cardiff.framework;
+
+import htsjdk.samtools.*;
+import org.biojava.nbio.core.exceptions.CompoundNotFoundException;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Staged read processing pipeline: decode -> filter/primer match -> align -> tag rewrite -> write.
+ * Stages exchange batches of reads through bounded queues so a slow stage applies backpressure upstream and
+ * the number of reads held in memory is capped regardless of amplicon depth or panel size.
+ *
+ * @author  Matt Lyon
+ * @version 1.0
+ * @since   2026-10-18
+ */
+public class AmpliconPipeline {
+
+    private static final Logger log = Logger.getLogger(AmpliconPipeline.class.getName());
+    private static final Batch endOfStream = new Batch(null);
+
+    private final PanelBundle panelBundle;
+    private final int minScore, gapOpenPenalty, gapExtendPenalty;
+    private final double primerSimilarity;
+    private String[] keepTags = {"RG"}, dropTags = null;
+    private int filterThreads = 1, alignThreads = 1, rewriteThreads = 1, queueDepth = 16, batchSize = 256;
+    private volatile boolean stopped = false;
+    private long firstWriteTime = 0;
+
+    public AmpliconPipeline(PanelBundle panelBundle, int minScore, int gapOpenPenalty, int gapExtendPenalty, double primerSimilarity){
+        this.panelBundle = panelBundle;
+        this.minScore = minScore;
+        this.gapOpenPenalty = gapOpenPenalty;
+        this.gapExtendPenalty = gapExtendPenalty;
+        this.primerSimilarity = primerSimilarity;
+    }
+
+    public void run(SamReader samReader, SAMFileWriter samFileWriter) throws InterruptedException {
+
+        StageQueue filterQueue = new StageQueue("filter", queueDepth, filterThreads);
+        StageQueue alignQueue = new StageQueue("align", queueDepth, alignThreads);
+        StageQueue rewriteQueue = new StageQueue("rewrite", queueDepth, rewriteThreads);
+        StageQueue writeQueue = new StageQueue("write", queueDepth, 1);
+
+        ArrayList<Thread> threads = new ArrayList<>();
+        threads.add(startStage("decode", () -> decode(samReader, filterQueue)));
+        threads.addAll(startStage("filter", filterThreads, filterQueue, alignQueue, () -> this::filter));
+        threads.addAll(startStage("align", alignThreads, alignQueue, rewriteQueue, () -> this::align));
+        threads.addAll(startStage("rewrite", rewriteThreads, rewriteQueue, writeQueue, () -> {
+            TagRewriter tagRewriter = new TagRewriter(keepTags, dropTags);
+            return batch -> rewrite(batch, tagRewriter);
+        }));
+
+        //write on the calling thread; the writer is not thread safe
+        try {
+            Batch batch;
+            while ((batch = writeQueue.take()) != endOfStream){
+                if (firstWriteTime == 0){
+                    firstWriteTime = System.currentTimeMillis();
+                }
+                for (AmpliconRead ampliconRead : batch.reads){
+                    samFileWriter.addAlignment(ampliconRead.samRecord);
+                }
+            }
+        } catch (RuntimeException | Error e){
+
+            //stop the stages before the caller closes the reader
+            stopped = true;
+            for (Thread thread : threads){
+                thread.interrupt();
+            }
+            for (Thread thread : threads){
+                thread.join();
+            }
+
+            throw e;
+        }
+
+        for (Thread thread : threads){
+            thread.join();
+        }
+
+        for (StageQueue stageQueue : new StageQueue[]{filterQueue, alignQueue, rewriteQueue, writeQueue}){
+            log.log(Level.INFO, stageQueue.toString());
+        }
+
+    }
+
+    private void decode(SamReader samReader, StageQueue out){
+
+        //loop over BED records
+        for (int i = 0; i < panelBundle.getAmpliconCount(); i++){
+            GenomicLocation genomicLocation = panelBundle.getGenomicLocation(i);
+            log.log(Level.FINE, "Inspecting region: " + genomicLocation + " ...");
+
+            Amplicon amplicon = new Amplicon(
+                    genomicLocation,
+                    panelBundle.getReferenceSequence(i),
+                    panelBundle.getUpstreamPrimerSequence(i),
+                    panelBundle.getDownstreamPrimerSequence(i)
+            );
+
+            log.log(Level.FINE, "Reference sequence: " + amplicon.referenceSequence);
+            log.log(Level.FINE, "Upstream primer: " + amplicon.upstreamPrimerSequence);
+            log.log(Level.FINE, "Downstream primer: " + amplicon.downstreamPrimerSequence);
+
+            //query alignments
+            try (SAMRecordIterator samRecordIterator = samReader.queryOverlapping(genomicLocation.getContig(), genomicLocation.getStartPosition(), genomicLocation.getEndPosition())){
+                Batch batch = new Batch(amplicon);
+
+                while (!stopped && samRecordIterator.hasNext()){
+                    batch.reads.add(new AmpliconRead(samRecordIterator.next()));
+
+                    if (batch.reads.size() == batchSize){
+                        out.put(batch);
+                        batch = new Batch(amplicon);
+                    }
+                }
+
+                if (!batch.reads.isEmpty()){
+                    out.put(batch);
+                }
+            }
+
+        }
+
+        out.finish();
+    }
+
+    private Batch filter(Batch batch){
+        Amplicon amplicon = batch.amplicon;
+
+        batch.reads.removeIf(ampliconRead -> {
+            SAMRecord samRecord = ampliconRead.samRecord;
+
+            if (samRecord.getReadUnmappedFlag() || samRecord.getNotPrimaryAlignmentFlag() || samRecord.getSupplementaryAlignmentFlag()){
+                return true;
+            }
+
+            //calculate hamming distances
+            int upstreamPrimerHammingDist = Hamming.getHammingDistance(samRecord.getReadString().substring(0, amplicon.upstreamPrimerSequence.length()), amplicon.upstreamPrimerSequence);
+            int downstreamPrimerHammingDist = Hamming.getHammingDistance(samRecord.getReadString().substring(samRecord.getReadLength() - amplicon.downstreamPrimerSequence.length()), amplicon.downstreamPrimerSequence);
+
+            double upstreamPrimerSimilarity = (double) (amplicon.upstreamPrimerSequence.length() - upstreamPrimerHammingDist) / amplicon.upstreamPrimerSequence.length();
+            double downstreamPrimerSimilarity = (double) (amplicon.downstreamPrimerSequence.length() - downstreamPrimerHammingDist) / amplicon.downstreamPrimerSequence.length();
+
+            return !(upstreamPrimerSimilarity > primerSimilarity && downstreamPrimerSimilarity > primerSimilarity);
+        });
+
+        return batch;
+    }
+
+    private Batch align(Batch batch){
+
+        batch.reads.removeIf(ampliconRead -> {
+            SAMRecord samRecord = ampliconRead.samRecord;
+
+            if (samRecord.getCigar().getFirstCigarElement().getOperator().equals(CigarOperator.SOFT_CLIP) ||
+                    samRecord.getCigar().getLastCigarElement().getOperator().equals(CigarOperator.SOFT_CLIP)){
+
+                try {
+
+                    PairwiseAligner pairwiseAligner = new PairwiseAligner(batch.amplicon.referenceSequence, samRecord.getReadString());
+                    pairwiseAligner.needlemanWunschAlignment(gapOpenPenalty, gapExtendPenalty);
+
+                    if (pairwiseAligner.getScore() > minScore){
+                        ampliconRead.cigar = pairwiseAligner.getCigar();
+                        ampliconRead.score = (int) Math.round(pairwiseAligner.getScore());
+                        return false;
+                    }
+
+                } catch (CompoundNotFoundException e){
+                    log.log(Level.SEVERE, "Could not perform pairwise alignment: " + e.getMessage());
+                    System.exit(-1);
+                }
+
+                return true;
+            }
+
+            return false;
+        });
+
+        return batch;
+    }
+
+    private Batch rewrite(Batch batch, TagRewriter tagRewriter){
+
+        for (AmpliconRead ampliconRead : batch.reads){
+            tagRewriter.rewrite(ampliconRead.samRecord, batch.amplicon.genomicLocation.getName(), ampliconRead.cigar, ampliconRead.score, batch.amplicon.genomicLocation.getStartPosition());
+        }
+
+        return batch;
+    }
+
+    private Thread startStage(String name, Runnable runnable){
+        Thread thread = new Thread(() -> {
+            try {
+                runnable.run();
+            } catch (Throwable e){
+
+                //interrupted by run() after a write failure
+                if (stopped){
+                    return;
+                }
+
+                log.log(Level.SEVERE, "Pipeline stage " + name + " failed: " + e.toString());
+                System.exit(-1);
+            }
+        }, name);
+
+        thread.setDaemon(true);
+        thread.start();
+
+        return thread;
+    }
+
+    private ArrayList<Thread> startStage(String name, int threads, StageQueue in, StageQueue out, Supplier<UnaryOperator<Batch>> stageSupplier){
+        ArrayList<Thread> stageThreads = new ArrayList<>();
+        AtomicInteger running = new AtomicInteger(threads);
+
+        for (int n = 0; n < threads; n++){
+            UnaryOperator<Batch> stage = stageSupplier.get();
+
+            stageThreads.add(startStage(name + "-" + n, () -> {
+                Batch batch;
+
+                while ((batch = in.take()) != endOfStream){
+                    batch = stage.apply(batch);
+
+                    if (!batch.reads.isEmpty()){
+                        out.put(batch);
+                    }
+                }
+
+                //last worker out signals the next stage
+                if (running.decrementAndGet() == 0){
+                    out.finish();
+                }
+            }));
+        }
+
+        return stageThreads;
+    }
+
+    /**
+     * @return wall clock time the first read was written, or 0 if no reads were written
+     */
+    public long getFirstWriteTime() {
+        return firstWriteTime;
+    }
+
+    public void setFilterThreads(int filterThreads) {
+        this.filterThreads = filterThreads;
+    }
+    public void setAlignThreads(int alignThreads) {
+        this.alignThreads = alignThreads;
+    }
+    public void setRewriteThreads(int rewriteThreads) {
+        this.rewriteThreads = rewriteThreads;
+    }
+    public void setQueueDepth(int queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+    public void setKeepTags(String[] keepTags) {
+        this.keepTags = keepTags;
+    }
+    public void setDropTags(String[] dropTags) {
+        this.dropTags = dropTags;
+    }
+
+    /*Reference and primer sequences shared by every read in a batch*/
+    private static class Amplicon {
+        private final GenomicLocation genomicLocation;
+        private final String referenceSequence, upstreamPrimerSequence, downstreamPrimerSequence;
+
+        private Amplicon(GenomicLocation genomicLocation, String referenceSequence, String upstreamPrimerSequence, String downstreamPrimerSequence){
+            this.genomicLocation = genomicLocation;
+            this.referenceSequence = referenceSequence;
+            this.upstreamPrimerSequence = upstreamPrimerSequence;
+            this.downstreamPrimerSequence = downstreamPrimerSequence;
+        }
+    }
+
+    /*Read with its realignment, if any*/
+    private static class AmpliconRead {
+        private final SAMRecord samRecord;
+        private Cigar cigar;
+        private int score;
+
+        private AmpliconRead(SAMRecord samRecord){
+            this.samRecord = samRecord;
+        }
+    }
+
+    private static class Batch {
+        private final Amplicon amplicon;
+        private final ArrayList<AmpliconRead> reads = new ArrayList<>();
+
+        private Batch(Amplicon amplicon){
+            this.amplicon = amplicon;
+        }
+    }
+
+    /*Bounded hand-off between stages with depth and backpressure metrics*/
+    private static class StageQueue {
+        private final String name;
+        private final int consumers;
+        private final ArrayBlockingQueue<Batch> queue;
+        private final AtomicInteger maxDepth = new AtomicInteger();
+        private final AtomicLong batches = new AtomicLong(), blockedNanos = new AtomicLong();
+
+        private StageQueue(String name, int capacity, int consumers){
+            this.name = name;
+            this.consumers = consumers;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        private void put(Batch batch){
+            try {
+
+                if (!queue.offer(batch)){
+                    long startTime = System.nanoTime();
+                    queue.put(batch);
+                    blockedNanos.addAndGet(System.nanoTime() - startTime);
+                }
+
+            } catch (InterruptedException e){
+                throw new IllegalStateException("Interrupted waiting for " + name + " queue", e);
+            }
+
+            batches.incrementAndGet();
+            maxDepth.accumulateAndGet(queue.size(), Math::max);
+        }
+
+        private Batch take(){
+            try {
+                return queue.take();
+            } catch (InterruptedException e){
+                throw new IllegalStateException("Interrupted waiting for " + name + " queue", e);
+            }
+        }
+
+        private void finish(){
+            for (int n = 0; n < consumers; n++){
+                try {
+                    queue.put(endOfStream);
+                } catch (InterruptedException e){
+                    throw new IllegalStateException("Interrupted waiting for " + name + " queue", e);
+                }
+            }
+        }
+
+        @Override
+        public String toString(){
+            return "Queue " + name + ": capacity=" + (queue.size() + queue.remainingCapacity()) + " maxDepth=" + maxDepth.get() +
+                    " batches=" + batches.get() + " blocked=" + (blockedNanos.get() / 1000000) + "ms";
+        }
+    }
+
+}
@@ -3,11 +3,10 @@ package nhs.genetics.cardiff;
 import htsjdk.samtools.*;
 import nhs.genetics.cardiff.framework.*;
 import org.apache.commons.cli.*;
-import org.biojava.nbio.core.exceptions.CompoundNotFoundException;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.lang.management.ManagementFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,11 +38,22 @@ public class Main {
         options.addOption("P", "PrimerSimilarity", true, "Primer similarity [0.8]");
         options.addOption("Go", "GapOpen", true, "Read alignment gap open penalty [-14]");
         options.addOption("Ge", "GapExtend", true, "Read alignment gap extend penalty [-4]");
+        options.addOption("C", "CompilePanel", true, "Path to write precompiled panel bundle and exit");
+        options.addOption("Fc", "FastaChecksum", false, "With CompilePanel, checksum the whole FASTA and verify it on every run [FASTA index checksum, size and modification time only]");
+        options.addOption("B", "Bundle", true, "Path to precompiled panel bundle");
+        options.addOption("Ft", "FilterThreads", true, "Primer filtering threads [1]");
+        options.addOption("At", "AlignThreads", true, "Read alignment threads [1]");
+        options.addOption("Rt", "RewriteThreads", true, "Tag rewriting threads [1]");
+        options.addOption("Q", "QueueDepth", true, "Maximum batches queued between stages [16]");
+        options.addOption("Bs", "BatchSize", true, "Reads per batch [256]");
+        options.addOption("Kt", "KeepTags", true, "Comma separated tags to keep, others are removed; AS is always written and NM, MD, UQ are removed from realigned reads [RG]");
+        options.addOption("Dt", "DropTags", true, "Comma separated tags to remove, others are kept (overrides KeepTags); AS is always written");
 
         try {
             commandLine = commandLineParser.parse(options, args);
 
-            if (!commandLine.hasOption("I") || !commandLine.hasOption("T") || ! commandLine.hasOption("O") || ! commandLine.hasOption("R")){
+            if (!commandLine.hasOption("T") || ! commandLine.hasOption("R") ||
+                    (!commandLine.hasOption("C") && (!commandLine.hasOption("I") || ! commandLine.hasOption("O")))){
                 throw new NullPointerException("Incorrect arguments");
             }
 
@@ -53,134 +63,132 @@ public class Main {
             System.exit(-1);
         }
 
-        File inputSamOrBamFile = new File(commandLine.getOptionValue("I"));
-        File outputSamOrBamFile = new File(commandLine.getOptionValue("O"));
         File bedFile = new File(commandLine.getOptionValue("T"));
         File referenceFasta = new File(commandLine.getOptionValue("R"));
         File referenceFastaFai = new File(commandLine.getOptionValue("R") + ".fai");
-        ArrayList<GenomicLocation> genomicLocations = null;
+        PanelBundle panelBundle = null;
         int minScore = commandLine.hasOption("S") ? Integer.parseInt(commandLine.getOptionValue("S")) : 50;
         int gapOpenPenalty = commandLine.hasOption("Go") ? Integer.parseInt(commandLine.getOptionValue("Go")) : -14;
         int gapExtendPenalty = commandLine.hasOption("Ge") ? Integer.parseInt(commandLine.getOptionValue("Ge")) : -4;
         double primerSimilarity = commandLine.hasOption("P") ? Double.parseDouble(commandLine.getOptionValue("P")) : 0.8;
+        int filterThreads = commandLine.hasOption("Ft") ? Integer.parseInt(commandLine.getOptionValue("Ft")) : 1;
+        int alignThreads = commandLine.hasOption("At") ? Integer.parseInt(commandLine.getOptionValue("At")) : 1;
+        int rewriteThreads = commandLine.hasOption("Rt") ? Integer.parseInt(commandLine.getOptionValue("Rt")) : 1;
+        int queueDepth = commandLine.hasOption("Q") ? Integer.parseInt(commandLine.getOptionValue("Q")) : 16;
+        int batchSize = commandLine.hasOption("Bs") ? Integer.parseInt(commandLine.getOptionValue("Bs")) : 256;
 
-        log.log(Level.INFO, "Running with settings: minScore=" +  minScore + " gapOpenPenalty=" + gapOpenPenalty + " gapExtendPenalty=" + gapExtendPenalty + " primerSimilarity=" + primerSimilarity);
-
-        log.log(Level.INFO, "Reading BED file: " + bedFile + " ...");
-        try {
-            genomicLocations = BEDFile.getBedFeatures(bedFile);
-        } catch (IOException e){
-            log.log(Level.SEVERE, "Could not read BED file: " + e.getMessage());
+        if (filterThreads < 1 || alignThreads < 1 || rewriteThreads < 1 || queueDepth < 1 || batchSize < 1){
+            formatter.printHelp(program + " " + version, options);
+            log.log(Level.SEVERE, "Threads, queue depth and batch size must be at least 1");
             System.exit(-1);
         }
 
-        log.log(Level.INFO, "Reading BAM file: " + inputSamOrBamFile + " ...");
-        try (SamReader samReader = SamReaderFactory.makeDefault().open(inputSamOrBamFile)){
-
-            SAMFileHeader samFileHeader = samReader.getFileHeader();
-            samFileHeader.setSortOrder(SAMFileHeader.SortOrder.unsorted);
+        String[] dropTags = commandLine.hasOption("Dt") ? commandLine.getOptionValue("Dt").split(",") : null;
+        String[] keepTags = dropTags != null ? null : commandLine.hasOption("Kt") ? commandLine.getOptionValue("Kt").split(",") : new String[]{"RG"};
 
-            SAMProgramRecord samProgramRecord = samFileHeader.createProgramRecord();
-            samProgramRecord.setCommandLine(String.join(" ", args));
-            samProgramRecord.setProgramName(program);
-            samProgramRecord.setProgramVersion(version);
-
-            log.log(Level.INFO, "Processing reads, writing to " + outputSamOrBamFile.getName() + " ...");
-            try (SAMFileWriter samFileWriter = new SAMFileWriterFactory().makeSAMOrBAMWriter(samFileHeader, true, outputSamOrBamFile)){
-
-                //loop over BED records
-                for (GenomicLocation genomicLocation : genomicLocations){
-                    log.log(Level.FINE, "Inspecting region: " + genomicLocation + " ...");
-
-                    //get reference sequence
-                    ReferenceSequence referenceSequence = new ReferenceSequence(new GenomicLocation(genomicLocation.getContig(), genomicLocation.getStartPosition(), genomicLocation.getEndPosition()), referenceFasta, referenceFastaFai);
-                    referenceSequence.populateReferenceSequence();
-
-                    //get primer sequences
-                    String upstreamPrimerSequence = referenceSequence.getReferenceSequence().substring(0, genomicLocation.getUpstreamPrimerLength());
-                    String downstreamPrimerSequence = referenceSequence.getReferenceSequence().substring(referenceSequence.getReferenceSequence().length() - genomicLocation.getDownstreamPrimerLength());
-
-                    log.log(Level.FINE, "Reference sequence: " + referenceSequence.getReferenceSequence());
-                    log.log(Level.FINE, "Upstream primer: " + upstreamPrimerSequence);
-                    log.log(Level.FINE, "Downstream primer: " + downstreamPrimerSequence);
-
-                    //query alignments
-                    SAMRecordIterator samRecordIterator = samReader.queryOverlapping(genomicLocation.getContig(), genomicLocation.getStartPosition(), genomicLocation.getEndPosition());
-
-                    samRecordIterator.stream()
-                            .filter(samRecord -> !samRecord.getReadUnmappedFlag())
-                            .filter(samRecord -> !samRecord.getNotPrimaryAlignmentFlag())
-                            .filter(samRecord -> !samRecord.getSupplementaryAlignmentFlag())
-                            .filter(samRecord -> {
+        for (String tag : dropTags != null ? dropTags : keepTags){
+            if (!tag.trim().matches("[A-Za-z][A-Za-z0-9]")){
+                formatter.printHelp(program + " " + version, options);
+                log.log(Level.SEVERE, "Invalid SAM tag: " + tag);
+                System.exit(-1);
+            }
+            if (tag.trim().equals("AS")){
+                formatter.printHelp(program + " " + version, options);
+                log.log(Level.SEVERE, "AS is always written and cannot be kept or dropped");
+                System.exit(-1);
+            }
+        }
 
-                                //calculate hamming distances
-                                int upstreamPrimerHammingDist = Hamming.getHammingDistance(samRecord.getReadString().substring(0, upstreamPrimerSequence.length()), upstreamPrimerSequence);
-                                int downstreamPrimerHammingDist = Hamming.getHammingDistance(samRecord.getReadString().substring(samRecord.getReadLength() - downstreamPrimerSequence.length()), downstreamPrimerSequence);
+        //compile panel only
+        if (commandLine.hasOption("C")){
+            File bundleFile = new File(commandLine.getOptionValue("C"));
 
-                                double upstreamPrimerSimilarity = (double) (upstreamPrimerSequence.length() - upstreamPrimerHammingDist) / upstreamPrimerSequence.length();
-                                double downstreamPrimerSimilarity = (double) (downstreamPrimerSequence.length() - downstreamPrimerHammingDist) / downstreamPrimerSequence.length();
+            log.log(Level.INFO, "Compiling panel bundle: " + bundleFile + " ...");
+            try {
+                PanelBundle.compile(bedFile, referenceFasta, referenceFastaFai, commandLine.hasOption("Fc")).writeTo(bundleFile);
+            } catch (IOException e){
+                log.log(Level.SEVERE, "Could not compile panel bundle: " + e.getMessage());
+                System.exit(-1);
+            }
 
-                                if (upstreamPrimerSimilarity > primerSimilarity && downstreamPrimerSimilarity > primerSimilarity){
-                                    return true;
-                                }
+            return;
+        }
 
-                                return false;
+        File inputSamOrBamFile = new File(commandLine.getOptionValue("I"));
+        File outputSamOrBamFile = new File(commandLine.getOptionValue("O"));
 
-                            })
-                            .forEach(samRecord -> {
+        log.log(Level.INFO, "Running with settings: minScore=" +  minScore + " gapOpenPenalty=" + gapOpenPenalty + " gapExtendPenalty=" + gapExtendPenalty + " primerSimilarity=" + primerSimilarity +
+                " filterThreads=" + filterThreads + " alignThreads=" + alignThreads + " rewriteThreads=" + rewriteThreads + " queueDepth=" + queueDepth + " batchSize=" + batchSize +
+                (dropTags != null ? " dropTags=" + String.join(",", dropTags) : " keepTags=" + String.join(",", keepTags)));
 
-                                if (samRecord.getCigar().getFirstCigarElement().getOperator().equals(CigarOperator.SOFT_CLIP) ||
-                                        samRecord.getCigar().getLastCigarElement().getOperator().equals(CigarOperator.SOFT_CLIP)){
+        long panelSetupStartTime = System.currentTimeMillis();
 
-                                    try {
+        if (commandLine.hasOption("B")){
+            File bundleFile = new File(commandLine.getOptionValue("B"));
 
-                                        PairwiseAligner pairwiseAligner = new PairwiseAligner(referenceSequence.getReferenceSequence(), samRecord.getReadString());
-                                        pairwiseAligner.needlemanWunschAlignment(gapOpenPenalty, gapExtendPenalty);
+            log.log(Level.INFO, "Reading panel bundle: " + bundleFile + " ...");
+            try {
+                panelBundle = PanelBundle.open(bundleFile);
 
-                                        if (pairwiseAligner.getScore() > minScore){
+                if (!panelBundle.isCompiledFrom(bedFile, referenceFasta, referenceFastaFai)){
+                    log.log(Level.WARNING, "Panel bundle is stale, recompiling from BED and FASTA files");
+                    panelBundle = null;
+                }
 
-                                            //adjust alignment
-                                            String readGroup = samRecord.getStringAttribute("RG");
-                                            samRecord.clearAttributes();
+            } catch (IOException e){
+                log.log(Level.WARNING, "Could not read panel bundle: " + e.getMessage());
+                panelBundle = null;
+            }
+        }
 
-                                            samRecord.setAttribute("RG", readGroup);
-                                            samRecord.setAttribute("AS", (int) Math.round(pairwiseAligner.getScore()));
-                                            samRecord.setAttribute("CO", genomicLocation.getName());
-                                            samRecord.setAttribute("XC", samRecord.getCigarString());
-                                            samRecord.setCigar(pairwiseAligner.getCigar());
-                                            samRecord.setAlignmentStart(genomicLocation.getStartPosition());
+        if (panelBundle == null){
+            log.log(Level.INFO, "Reading BED file: " + bedFile + " ...");
+            try {
+                panelBundle = PanelBundle.compile(bedFile, referenceFasta, referenceFastaFai, false);
+            } catch (IOException e){
+                log.log(Level.SEVERE, "Could not read BED file: " + e.getMessage());
+                System.exit(-1);
+            }
+        }
 
-                                            samFileWriter.addAlignment(samRecord);
-                                        }
+        log.log(Level.INFO, "Panel setup time: " + (System.currentTimeMillis() - panelSetupStartTime) + "ms");
 
-                                    } catch (CompoundNotFoundException e){
-                                        log.log(Level.SEVERE, "Could not perform pairwise alignment: " + e.getMessage());
-                                        System.exit(-1);
-                                    }
+        log.log(Level.INFO, "Reading BAM file: " + inputSamOrBamFile + " ...");
+        try (SamReader samReader = SamReaderFactory.makeDefault().open(inputSamOrBamFile)){
 
-                                } else {
-                                    String readGroup = samRecord.getStringAttribute("RG");
-                                    int alignmentScore = samRecord.getIntegerAttribute("AS");
-                                    samRecord.clearAttributes();
+            SAMFileHeader samFileHeader = samReader.getFileHeader();
+            samFileHeader.setSortOrder(SAMFileHeader.SortOrder.unsorted);
 
-                                    samRecord.setAttribute("RG", readGroup);
-                                    samRecord.setAttribute("AS", alignmentScore);
-                                    samRecord.setAttribute("CO", genomicLocation.getName());
+            SAMProgramRecord samProgramRecord = samFileHeader.createProgramRecord();
+            samProgramRecord.setCommandLine(String.join(" ", args));
+            samProgramRecord.setProgramName(program);
+            samProgramRecord.setProgramVersion(version);
 
-                                    samFileWriter.addAlignment(samRecord);
-                                }
+            log.log(Level.INFO, "Processing reads, writing to " + outputSamOrBamFile.getName() + " ...");
+            try (SAMFileWriter samFileWriter = new SAMFileWriterFactory().makeSAMOrBAMWriter(samFileHeader, true, outputSamOrBamFile)){
 
-                            });
+                AmpliconPipeline ampliconPipeline = new AmpliconPipeline(panelBundle, minScore, gapOpenPenalty, gapExtendPenalty, primerSimilarity);
+                ampliconPipeline.setFilterThreads(filterThreads);
+                ampliconPipeline.setAlignThreads(alignThreads);
+                ampliconPipeline.setRewriteThreads(rewriteThreads);
+                ampliconPipeline.setQueueDepth(queueDepth);
+                ampliconPipeline.setBatchSize(batchSize);
+                ampliconPipeline.setKeepTags(keepTags);
+                ampliconPipeline.setDropTags(dropTags);
 
-                    samRecordIterator.close();
-                }
+                ampliconPipeline.run(samReader, samFileWriter);
 
+                //read after processing; the MXBean is too slow to touch on the startup path
+                long firstReadTime = ampliconPipeline.getFirstWriteTime() != 0 ? ampliconPipeline.getFirstWriteTime() : System.currentTimeMillis();
+                log.log(Level.INFO, "Startup time: " + (firstReadTime - ManagementFactory.getRuntimeMXBean().getStartTime()) + "ms (JVM start to first read written)");
             }
 
-
         } catch (IOException e){
             log.log(Level.SEVERE, "Could not read BAM file: " + e.getMessage());
             System.exit(-1);
+        } catch (InterruptedException e){
+            log.log(Level.SEVERE, "Interrupted while processing reads: " + e.getMessage());
+            System.exit(-1);
         }
 
     }
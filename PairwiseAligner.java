@@ -7,6 +7,7 @@ import org.biojava.nbio.alignment.Alignments;
 import org.biojava.nbio.alignment.SimpleGapPenalty;
 import org.biojava.nbio.alignment.template.PairwiseSequenceAligner;
 import org.biojava.nbio.core.alignment.matrices.SubstitutionMatrixHelper;
+import org.biojava.nbio.core.alignment.template.SubstitutionMatrix;
 import org.biojava.nbio.core.exceptions.CompoundNotFoundException;
 import org.biojava.nbio.core.sequence.DNASequence;
 import org.biojava.nbio.core.sequence.compound.AmbiguityDNACompoundSet;
@@ -31,6 +32,11 @@ public class PairwiseAligner {
         this.queryDNASequence = new DNASequence(queryString, AmbiguityDNACompoundSet.getDNACompoundSet());
     }
 
+    /*getNuc4_4() caches in an unsynchronised map; class initialisation loads it exactly once across threads*/
+    private static class ScoringMatrix {
+        private static final SubstitutionMatrix<NucleotideCompound> nuc4_4 = SubstitutionMatrixHelper.getNuc4_4();
+    }
+
     public void smithWatermanAlignment(int gapOpen, int gapExt){
         SimpleGapPenalty simpleGapPenalty = new SimpleGapPenalty(gapOpen, gapExt);
 
@@ -39,7 +45,7 @@ public class PairwiseAligner {
                 referenceDNASequence,
                 Alignments.PairwiseSequenceAlignerType.LOCAL,
                 simpleGapPenalty,
-                SubstitutionMatrixHelper.getNuc4_4());
+                ScoringMatrix.nuc4_4);
     }
 
     public void needlemanWunschAlignment(int gapOpen, int gapExt){
@@ -50,7 +56,7 @@ public class PairwiseAligner {
                 referenceDNASequence,
                 Alignments.PairwiseSequenceAlignerType.GLOBAL,
                 simpleGapPenalty,
-                SubstitutionMatrixHelper.getNuc4_4());
+                ScoringMatrix.nuc4_4);
     }
 
     public Cigar getCigar(){
@@ -0,0 +1,353 @@
+package nhs.genetics.cardiff.framework;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Precompiled amplicon panel. Holds the deduplicated BED targets, their names and 2-bit packed reference sequences
+ * (primers are the packed prefix/suffix of each amplicon) in a single binary bundle which can be memory-mapped
+ * by later runs without re-reading the BED or FASTA files.
+ *
+ * Layout (big-endian): header, contig names, fixed-width amplicon records (sorted by contig and position),
+ * amplicon names, non-ACGT exceptions, packed bases.
+ *
+ * @author  Matt Lyon
+ * @version 1.0
+ * @since   2026-10-18
+ */
+public class PanelBundle {
+
+    private static final int MAGIC = 0x41504231; //APB1
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 76;
+    private static final int RECORD_SIZE = 44;
+    private static final int EXCEPTION_SIZE = 5;
+    private static final char[] BASES = {'A', 'C', 'G', 'T'};
+    private static final long NO_CHECKSUM = -1;
+
+    private final ByteBuffer buffer;
+    private final int recordsOffset, exceptionsOffset, packedOffset;
+    private final ArrayList<GenomicLocation> genomicLocations = new ArrayList<>();
+
+    private PanelBundle(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC){
+            throw new IOException("Not a panel bundle");
+        }
+        if (buffer.getInt(4) != VERSION){
+            throw new IOException("Unsupported panel bundle version: " + buffer.getInt(4));
+        }
+
+        int contigCount = buffer.getInt(48);
+        int ampliconCount = buffer.getInt(52);
+        int contigsOffset = buffer.getInt(56);
+        int namesOffset = buffer.getInt(64);
+
+        this.recordsOffset = buffer.getInt(60);
+        this.exceptionsOffset = buffer.getInt(68);
+        this.packedOffset = buffer.getInt(72);
+
+        //sections must be in order and inside the buffer
+        checkBounds(contigCount >= 0 && ampliconCount >= 0 &&
+                HEADER_SIZE <= contigsOffset && contigsOffset <= recordsOffset && recordsOffset <= namesOffset &&
+                namesOffset <= exceptionsOffset && exceptionsOffset <= packedOffset && packedOffset <= buffer.capacity() &&
+                (long) contigCount * 2 <= recordsOffset - contigsOffset &&
+                (long) ampliconCount * RECORD_SIZE <= namesOffset - recordsOffset, "section offsets");
+
+        int exceptionEntries = (packedOffset - exceptionsOffset) / EXCEPTION_SIZE;
+
+        //contig names
+        String[] contigs = new String[contigCount];
+        for (int n = 0, offset = contigsOffset; n < contigCount; n++){
+            checkBounds(offset + 2 <= recordsOffset, "contig table");
+
+            int length = buffer.getShort(offset);
+            checkBounds(length >= 0 && offset + 2 + length <= recordsOffset, "contig table");
+
+            contigs[n] = readString(offset + 2, length);
+            offset += 2 + length;
+        }
+
+        //amplicon coordinates and names, decoded once per bundle
+        for (int i = 0; i < ampliconCount; i++){
+            int record = recordsOffset + i * RECORD_SIZE;
+            int contigIndex = buffer.getInt(record);
+            int upstreamPrimerLength = buffer.getInt(record + 12);
+            int downstreamPrimerLength = buffer.getInt(record + 16);
+            int sequenceLength = buffer.getInt(record + 20);
+            int sequenceOffset = buffer.getInt(record + 24);
+            int exceptionIndex = buffer.getInt(record + 28);
+            int exceptionCount = buffer.getInt(record + 32);
+            int nameOffset = buffer.getInt(record + 36);
+            int nameLength = buffer.getInt(record + 40);
+
+            checkBounds(contigIndex >= 0 && contigIndex < contigCount &&
+                    sequenceLength >= 0 && sequenceOffset >= 0 &&
+                    (long) sequenceOffset + (sequenceLength + 3L) / 4 <= buffer.capacity() - packedOffset &&
+                    upstreamPrimerLength >= 0 && upstreamPrimerLength <= sequenceLength &&
+                    downstreamPrimerLength >= 0 && downstreamPrimerLength <= sequenceLength &&
+                    exceptionIndex >= 0 && exceptionCount >= 0 && (long) exceptionIndex + exceptionCount <= exceptionEntries &&
+                    nameOffset >= 0 && nameLength >= 0 && (long) nameOffset + nameLength <= exceptionsOffset - namesOffset,
+                    "amplicon record " + i);
+
+            GenomicLocation genomicLocation = new GenomicLocation(
+                    contigs[contigIndex],
+                    buffer.getInt(record + 4),
+                    buffer.getInt(record + 8),
+                    readString(namesOffset + nameOffset, nameLength)
+            );
+            genomicLocation.setUpstreamPrimerLength(upstreamPrimerLength);
+            genomicLocation.setDownstreamPrimerLength(downstreamPrimerLength);
+
+            genomicLocations.add(genomicLocation);
+        }
+
+    }
+
+    private static void checkBounds(boolean valid, String section) throws IOException {
+        if (!valid){
+            throw new IOException("Corrupt panel bundle: " + section + " out of bounds");
+        }
+    }
+
+    /**
+     * Parses the BED file and fetches each amplicon from the indexed FASTA into an in-memory bundle. If
+     * checksumFasta is set the whole FASTA is checksummed and later verified by {@link #isCompiledFrom}.
+     */
+    public static PanelBundle compile(File bedFile, File fastaFilePath, File indexFilePath, boolean checksumFasta) throws IOException {
+
+        ArrayList<GenomicLocation> amplicons = BEDFile.getBedFeatures(bedFile);
+        ArrayList<String> contigs = new ArrayList<>();
+
+        ByteArrayOutputStream contigBytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream nameBytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream exceptionBytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream packedBytes = new ByteArrayOutputStream();
+
+        DataOutputStream contigOut = new DataOutputStream(contigBytes);
+        DataOutputStream recordOut = new DataOutputStream(recordBytes);
+        DataOutputStream exceptionOut = new DataOutputStream(exceptionBytes);
+
+        int exceptionCount = 0;
+
+        for (GenomicLocation genomicLocation : amplicons){
+
+            //get reference sequence
+            ReferenceSequence referenceSequence = new ReferenceSequence(new GenomicLocation(genomicLocation.getContig(), genomicLocation.getStartPosition(), genomicLocation.getEndPosition()), fastaFilePath, indexFilePath);
+            referenceSequence.populateReferenceSequence();
+
+            if (referenceSequence.getReferenceSequence() == null){
+                throw new IOException("Could not fetch reference sequence for " + genomicLocation);
+            }
+
+            String sequence = referenceSequence.getReferenceSequence();
+
+            int contigIndex = contigs.indexOf(genomicLocation.getContig());
+            if (contigIndex == -1){
+                contigIndex = contigs.size();
+                contigs.add(genomicLocation.getContig());
+
+                byte[] contig = genomicLocation.getContig().getBytes(StandardCharsets.UTF_8);
+                contigOut.writeShort(contig.length);
+                contigOut.write(contig);
+            }
+
+            byte[] name = genomicLocation.getName().getBytes(StandardCharsets.UTF_8);
+
+            recordOut.writeInt(contigIndex);
+            recordOut.writeInt(genomicLocation.getStartPosition());
+            recordOut.writeInt(genomicLocation.getEndPosition());
+            recordOut.writeInt(genomicLocation.getUpstreamPrimerLength());
+            recordOut.writeInt(genomicLocation.getDownstreamPrimerLength());
+            recordOut.writeInt(sequence.length());
+            recordOut.writeInt(packedBytes.size());
+            recordOut.writeInt(exceptionCount);
+
+            //pack four bases per byte; anything other than upper case ACGT is stored verbatim as an exception
+            int ampliconExceptions = 0, packed = 0;
+            for (int p = 0; p < sequence.length(); p++){
+                char base = sequence.charAt(p);
+                int code;
+
+                switch (base){
+                    case 'A': code = 0; break;
+                    case 'C': code = 1; break;
+                    case 'G': code = 2; break;
+                    case 'T': code = 3; break;
+                    default:
+                        code = 0;
+                        exceptionOut.writeInt(p);
+                        exceptionOut.writeByte(base);
+                        ampliconExceptions++;
+                }
+
+                packed |= code << (6 - 2 * (p % 4));
+
+                if (p % 4 == 3){
+                    packedBytes.write(packed);
+                    packed = 0;
+                }
+            }
+            if (sequence.length() % 4 != 0){
+                packedBytes.write(packed);
+            }
+            exceptionCount += ampliconExceptions;
+
+            recordOut.writeInt(ampliconExceptions);
+            recordOut.writeInt(nameBytes.size());
+            recordOut.writeInt(name.length);
+            nameBytes.write(name);
+        }
+
+        int contigsOffset = HEADER_SIZE;
+        int recordsOffset = contigsOffset + contigBytes.size();
+        int namesOffset = recordsOffset + recordBytes.size();
+        int exceptionsOffset = namesOffset + nameBytes.size();
+        int packedOffset = exceptionsOffset + exceptionBytes.size();
+
+        ByteBuffer buffer = ByteBuffer.allocate(packedOffset + packedBytes.size());
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putLong(getChecksum(bedFile));
+        buffer.putLong(getChecksum(indexFilePath));
+        buffer.putLong(fastaFilePath.length());
+        buffer.putLong(fastaFilePath.lastModified());
+        buffer.putLong(checksumFasta ? getChecksum(fastaFilePath) : NO_CHECKSUM);
+        buffer.putInt(contigs.size());
+        buffer.putInt(amplicons.size());
+        buffer.putInt(contigsOffset);
+        buffer.putInt(recordsOffset);
+        buffer.putInt(namesOffset);
+        buffer.putInt(exceptionsOffset);
+        buffer.putInt(packedOffset);
+        buffer.put(contigBytes.toByteArray());
+        buffer.put(recordBytes.toByteArray());
+        buffer.put(nameBytes.toByteArray());
+        buffer.put(exceptionBytes.toByteArray());
+        buffer.put(packedBytes.toByteArray());
+        buffer.clear();
+
+        return new PanelBundle(buffer);
+    }
+
+    /**
+     * Memory-maps a bundle previously written with {@link #writeTo(File)}
+     */
+    public static PanelBundle open(File bundleFile) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(bundleFile.toPath(), StandardOpenOption.READ)){
+            return new PanelBundle(fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size()));
+        }
+    }
+
+    /**
+     * Writes to a temporary file and moves it into place, so runs which have the old bundle mapped are unaffected
+     * and an interrupted write never leaves a partial bundle
+     */
+    public void writeTo(File bundleFile) throws IOException {
+        Path bundlePath = bundleFile.getAbsoluteFile().toPath();
+        Path tempPath = bundlePath.resolveSibling(bundlePath.getFileName() + "." + System.nanoTime() + ".tmp");
+
+        try {
+
+            //created with default permissions so the bundle can be shared
+            try (FileChannel fileChannel = FileChannel.open(tempPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)){
+                ByteBuffer source = buffer.duplicate();
+                source.clear();
+                while (source.hasRemaining()){
+                    fileChannel.write(source);
+                }
+                fileChannel.force(true);
+            }
+
+            Files.move(tempPath, bundlePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    /**
+     * Checks the bundle was compiled from these BED and FASTA files. By default the FASTA is identified by its index
+     * checksum, length and modification time; bundles compiled with a full FASTA checksum also verify that.
+     */
+    public boolean isCompiledFrom(File bedFile, File fastaFilePath, File indexFilePath) throws IOException {
+        return buffer.getLong(8) == getChecksum(bedFile) &&
+                buffer.getLong(16) == getChecksum(indexFilePath) &&
+                buffer.getLong(24) == fastaFilePath.length() &&
+                buffer.getLong(32) == fastaFilePath.lastModified() &&
+                (buffer.getLong(40) == NO_CHECKSUM || buffer.getLong(40) == getChecksum(fastaFilePath));
+    }
+
+    private static long getChecksum(File file) throws IOException {
+        CRC32 crc32 = new CRC32();
+        byte[] bytes = new byte[8192];
+
+        try (CheckedInputStream checkedInputStream = new CheckedInputStream(new FileInputStream(file), crc32)){
+            while (checkedInputStream.read(bytes) != -1);
+        }
+
+        return crc32.getValue();
+    }
+
+    private String readString(int offset, int length){
+        byte[] bytes = new byte[length];
+        for (int n = 0; n < length; n++){
+            bytes[n] = buffer.get(offset + n);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private String decodeSequence(int i, int from, int to){
+        int record = recordsOffset + i * RECORD_SIZE;
+        int packedStart = packedOffset + buffer.getInt(record + 24);
+        int exceptionStart = buffer.getInt(record + 28);
+        int exceptionCount = buffer.getInt(record + 32);
+        char[] sequence = new char[to - from];
+
+        for (int p = from; p < to; p++){
+            int packed = buffer.get(packedStart + p / 4);
+            sequence[p - from] = BASES[(packed >> (6 - 2 * (p % 4))) & 3];
+        }
+
+        //restore non-ACGT bases
+        for (int e = exceptionStart; e < exceptionStart + exceptionCount; e++){
+            int exception = exceptionsOffset + e * EXCEPTION_SIZE;
+            int position = buffer.getInt(exception);
+
+            if (position >= from && position < to){
+                sequence[position - from] = (char) buffer.get(exception + 4);
+            }
+        }
+
+        return new String(sequence);
+    }
+
+    public int getAmpliconCount(){
+        return genomicLocations.size();
+    }
+    public GenomicLocation getGenomicLocation(int i){
+        return genomicLocations.get(i);
+    }
+    public String getReferenceSequence(int i){
+        return decodeSequence(i, 0, buffer.getInt(recordsOffset + i * RECORD_SIZE + 20));
+    }
+    public String getUpstreamPrimerSequence(int i){
+        return decodeSequence(i, 0, genomicLocations.get(i).getUpstreamPrimerLength());
+    }
+    public String getDownstreamPrimerSequence(int i){
+        int length = buffer.getInt(recordsOffset + i * RECORD_SIZE + 20);
+        return decodeSequence(i, length - genomicLocations.get(i).getDownstreamPrimerLength(), length);
+    }
+
+}
@@ -0,0 +1,105 @@
+package nhs.genetics.cardiff.framework;
+
+import htsjdk.samtools.Cigar;
+import htsjdk.samtools.SAMRecord;
+
+import java.util.LinkedHashSet;
+
+/**
+ * Rewrites output read tags according to a retention policy. Either only the keep list is retained (attributes are
+ * cleared) or only the drop list is removed (everything else is retained). AS, CO and XC are always written by the
+ * rewriter; AS is carried over for reads which were not realigned, if present. NM, MD and UQ describe the old
+ * alignment and are always removed from realigned reads.
+ *
+ * Instances reuse their value buffer and score cache and are not thread safe; use one per worker.
+ *
+ * @author  Matt Lyon
+ * @version 1.0
+ * @since   2026-10-18
+ */
+public class TagRewriter {
+
+    private static final String AS = "AS", CO = "CO", XC = "XC";
+    private static final String[] alignmentTags = {"NM", "MD", "UQ"};
+
+    private final String[] keepTags, dropTags;
+    private final Object[] keptValues;
+    private final Integer[] scores = new Integer[1024];
+
+    public TagRewriter(String[] keepTags, String[] dropTags){
+        this.keepTags = keepTags == null ? null : toTags(keepTags);
+        this.dropTags = dropTags == null ? new String[0] : toTags(dropTags);
+        this.keptValues = this.keepTags == null ? null : new Object[this.keepTags.length];
+    }
+
+    /**
+     * @param realignedCigar new alignment, or null if the read was not realigned
+     */
+    public void rewrite(SAMRecord samRecord, String ampliconName, Cigar realignedCigar, int score, int alignmentStart){
+        Object alignmentScore = realignedCigar == null ? samRecord.getAttribute(AS) : getScore(score);
+
+        if (keepTags != null){
+
+            //keep list: buffer retained values, clear, then restore
+            for (int n = 0; n < keepTags.length; n++){
+                keptValues[n] = samRecord.getAttribute(keepTags[n]);
+            }
+
+            samRecord.clearAttributes();
+
+            for (int n = 0; n < keepTags.length; n++){
+                if (keptValues[n] != null){
+                    samRecord.setAttribute(keepTags[n], keptValues[n]);
+                    keptValues[n] = null;
+                }
+            }
+
+        } else {
+
+            //drop list: remove in place
+            for (String dropTag : dropTags){
+                samRecord.setAttribute(dropTag, null);
+            }
+
+        }
+
+        samRecord.setAttribute(AS, alignmentScore);
+        samRecord.setAttribute(CO, ampliconName);
+
+        if (realignedCigar != null){
+            for (String alignmentTag : alignmentTags){
+                samRecord.setAttribute(alignmentTag, null);
+            }
+
+            samRecord.setAttribute(XC, samRecord.getCigarString());
+            samRecord.setCigar(realignedCigar);
+            samRecord.setAlignmentStart(alignmentStart);
+        }
+
+    }
+
+    private Integer getScore(int score){
+        if (score < 0 || score >= scores.length){
+            return score;
+        }
+        if (scores[score] == null){
+            scores[score] = score;
+        }
+        return scores[score];
+    }
+
+    private static String[] toTags(String[] tags){
+        LinkedHashSet<String> uniqueTags = new LinkedHashSet<>();
+
+        for (String tag : tags){
+            tag = tag.trim();
+
+            if (!tag.isEmpty()){
+                uniqueTags.add(tag.intern());
+            }
+        }
+
+        return uniqueTags.toArray(new String[0]);
+    }
+
+}